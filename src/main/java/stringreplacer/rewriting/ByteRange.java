@@ -0,0 +1,127 @@
+/* Copyright 2011 Elijah Zupancic
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package stringreplacer.rewriting;
+
+/**
+ * A single byte range requested with the HTTP Range header, resolved
+ * against the length of the body that it is served from.
+ *
+ * @author Elijah Zupancic
+ */
+class ByteRange {
+    /** Range that starts past the end of the body (416 response). */
+    static final ByteRange UNSATISFIABLE = new ByteRange(-1, -1);
+
+    public final long first;
+    public final long last;
+
+    private ByteRange(long first, long last) {
+        this.first = first;
+        this.last = last;
+    }
+
+    /**
+     * Parses a Range header. Headers that we don't support (like multiple
+     * ranges) or can't parse are ignored, which per the HTTP spec means
+     * that the whole body is sent.
+     * @param header value of the Range header
+     * @param length length of the body being served
+     * @return the range, UNSATISFIABLE or null if the header is ignored
+     */
+    static ByteRange parse(String header, long length) {
+        if (header == null) {
+            return null;
+        }
+
+        String spec = header.trim();
+
+        if (!spec.toLowerCase().startsWith("bytes=")) {
+            return null;
+        }
+
+        spec = spec.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+
+        if (dash < 0 || spec.indexOf(',') >= 0) {
+            return null;
+        }
+
+        String firstText = spec.substring(0, dash).trim();
+        String lastText = spec.substring(dash + 1).trim();
+
+        try {
+            long first;
+            long last;
+
+            // "bytes=-500" is a request for the last 500 bytes
+            if (firstText.length() == 0) {
+                if (lastText.length() == 0) {
+                    return null;
+                }
+
+                long suffix = Long.parseLong(lastText);
+
+                if (suffix <= 0) {
+                    return UNSATISFIABLE;
+                }
+
+                first = Math.max(0, length - suffix);
+                last = length - 1;
+            }
+            else {
+                first = Long.parseLong(firstText);
+                last = length - 1;
+
+                if (lastText.length() > 0) {
+                    long requestedLast = Long.parseLong(lastText);
+
+                    if (requestedLast < first) {
+                        return null;
+                    }
+
+                    last = Math.min(requestedLast, last);
+                }
+            }
+
+            return first < length ? new ByteRange(first, last) : UNSATISFIABLE;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    public boolean isSatisfiable() {
+        return first >= 0;
+    }
+
+    public long getLength() {
+        return last - first + 1;
+    }
+
+    /**
+     * @param total length of the whole body
+     * @return value for the Content-Range header
+     */
+    public String toContentRange(long total) {
+        return isSatisfiable() ?
+                "bytes " + first + "-" + last + "/" + total :
+                "bytes */" + total;
+    }
+
+    @Override
+    public String toString() {
+        return "[" + first + "-" + last + "]";
+    }
+}
@@ -0,0 +1,192 @@
+/* Copyright 2011 Elijah Zupancic
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package stringreplacer.rewriting;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Works out which charset a response body is encoded in by looking at (in
+ * order of precedence) a byte order mark, the charset parameter of the
+ * Content-Type header and a meta tag near the start of an HTML document.
+ * This follows the order that browsers use, so that we match the body with
+ * the same charset that the client will decode it with.
+ *
+ * @author Elijah Zupancic
+ */
+class CharsetDetector {
+    public static final Charset DEFAULT_CHARSET = Charset.forName("UTF-8");
+
+    /** How far into a document we look for a meta tag. */
+    static final int META_SNIFF_LENGTH = 1024;
+
+    private static final Pattern CONTENT_TYPE_CHARSET =
+            Pattern.compile(";\\s*charset\\s*=\\s*[\"']?([^\"';\\s]+)");
+    private static final Pattern META_CHARSET =
+            Pattern.compile("<meta[^>]+charset\\s*=\\s*[\"']?([^\"'>/;\\s]+)");
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+    private static final String ASCII_PROBE = "<>\"'=:/(){}";
+
+    private static final Object[][] BYTE_ORDER_MARKS = new Object[][] {
+        // the UTF-32LE mark starts with the UTF-16LE mark, so it goes first
+        { new byte[] { (byte)0xFF, (byte)0xFE, 0, 0 }, "UTF-32LE" },
+        { new byte[] { 0, 0, (byte)0xFE, (byte)0xFF }, "UTF-32BE" },
+        { new byte[] { (byte)0xEF, (byte)0xBB, (byte)0xBF }, "UTF-8" },
+        { new byte[] { (byte)0xFE, (byte)0xFF }, "UTF-16BE" },
+        { new byte[] { (byte)0xFF, (byte)0xFE }, "UTF-16LE" }
+    };
+
+    private CharsetDetector() {
+    }
+
+    /**
+     * Detects the charset of a response body. Bytes read while detecting are
+     * pushed back with mark/reset, so the stream must support marking.
+     * @param in response body
+     * @param contentType lowercase content type sent by the origin
+     * @return detected charset or the default charset
+     */
+    public static Charset detect(InputStream in, String contentType)
+            throws IOException {
+        Charset bom = detectByteOrderMark(in);
+
+        if (bom != null) {
+            return bom;
+        }
+
+        Charset declared = fromContentType(contentType);
+
+        if (declared != null) {
+            return declared;
+        }
+
+        if (ContextScopedRewriteStream.Syntax.forContentType(contentType) ==
+                ContextScopedRewriteStream.Syntax.MARKUP) {
+            Charset meta = detectMetaCharset(in);
+
+            if (meta != null) {
+                return meta;
+            }
+        }
+
+        return DEFAULT_CHARSET;
+    }
+
+    /**
+     * @return true if the charset encodes ASCII characters as single ASCII
+     * bytes, so that byte level tokenizing still works
+     */
+    public static boolean isAsciiCompatible(Charset charset) {
+        return Arrays.equals(ASCII_PROBE.getBytes(US_ASCII),
+                ASCII_PROBE.getBytes(charset));
+    }
+
+    static Charset fromContentType(String contentType) {
+        if (contentType == null) {
+            return null;
+        }
+
+        Matcher matcher = CONTENT_TYPE_CHARSET.matcher(contentType);
+
+        return matcher.find() ? forName(matcher.group(1)) : null;
+    }
+
+    private static Charset detectByteOrderMark(InputStream in)
+            throws IOException {
+        byte[] start = peek(in, 4);
+
+        for (Object[] bom : BYTE_ORDER_MARKS) {
+            byte[] mark = (byte[])bom[0];
+
+            if (start.length >= mark.length &&
+                Arrays.equals(mark, Arrays.copyOf(start, mark.length))) {
+                return Charset.forName((String)bom[1]);
+            }
+        }
+
+        return null;
+    }
+
+    private static Charset detectMetaCharset(InputStream in)
+            throws IOException {
+        // ISO-8859-1 maps every byte to a char, so this never fails to decode
+        String start = new String(peek(in, META_SNIFF_LENGTH), "ISO-8859-1")
+                .toLowerCase();
+        Matcher matcher = META_CHARSET.matcher(start);
+
+        if (!matcher.find()) {
+            return null;
+        }
+
+        Charset charset = forName(matcher.group(1));
+
+        /* If we could read the meta tag as ASCII, the document can't really
+         * be in a charset like UTF-16. Browsers treat this as UTF-8. */
+        if (charset != null && !isAsciiCompatible(charset)) {
+            return DEFAULT_CHARSET;
+        }
+
+        return charset;
+    }
+
+    /**
+     * Looks up a declared charset. Charsets that can only decode (like
+     * x-JISAutoDetect) are treated as unknown, since the rules have to be
+     * encoded in the charset to be matched.
+     */
+    private static Charset forName(String name) {
+        try {
+            if (!Charset.isSupported(name)) {
+                return null;
+            }
+
+            Charset charset = Charset.forName(name);
+
+            return charset.canEncode() ? charset : null;
+        } catch (IllegalCharsetNameException e) {
+            return null;
+        }
+    }
+
+    private static byte[] peek(InputStream in, int length) throws IOException {
+        byte[] peeked = new byte[length];
+        int total = 0;
+
+        in.mark(length);
+
+        try {
+            while (total < length) {
+                int read = in.read(peeked, total, length - total);
+
+                if (read == -1) {
+                    break;
+                }
+
+                total += read;
+            }
+        } finally {
+            in.reset();
+        }
+
+        return Arrays.copyOf(peeked, total);
+    }
+}
@@ -0,0 +1,585 @@
+/* Copyright 2011 Elijah Zupancic
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package stringreplacer.rewriting;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Input stream that tokenizes markup, CSS or JSON as it is read and only
+ * runs the match and replace streams over the parts of the document that can
+ * hold a URL: attribute values, <code>url(...)</code> / string tokens in CSS
+ * and JSON string values. Everything else (text nodes, comments, JSON keys
+ * and <code>data:</code> URIs) is copied through without being scanned, in
+ * blocks when read through {@link #read(byte[], int, int)}.
+ *
+ * The body of a <code>&lt;style&gt;</code> element is tokenized as CSS. The
+ * body of a <code>&lt;script&gt;</code> element is not tokenized at all and
+ * is scanned in full, since script can build URLs anywhere.
+ *
+ * Tokenizing is done on bytes, so the document must be in a charset that is
+ * ASCII compatible (see {@link CharsetDetector#isAsciiCompatible}).
+ *
+ * The tokenizer is deliberately forgiving. It never drops or reorders bytes,
+ * so the worst that malformed input can do is cause a region to be scanned
+ * or skipped when it should not have been.
+ *
+ * @author Elijah Zupancic
+ */
+class ContextScopedRewriteStream extends InputRewriterStream {
+    /**
+     * Document syntaxes that we know how to tokenize.
+     */
+    enum Syntax {
+        MARKUP, CSS, JSON;
+
+        /**
+         * Finds the syntax used by a content type.
+         * @param contentType lowercase content type sent by the origin
+         * @return matching syntax or null if we can't tokenize the type
+         */
+        static Syntax forContentType(String contentType) {
+            if (contentType.startsWith("text/html") ||
+                contentType.startsWith("application/xhtml+xml")) {
+                return MARKUP;
+            }
+            else if (contentType.startsWith("text/css")) {
+                return CSS;
+            }
+            else if (contentType.startsWith("application/json")) {
+                return JSON;
+            }
+
+            return null;
+        }
+    }
+
+    private enum State {
+        TEXT, TAG_OPEN, TAG, ATTR_EQUALS, COMMENT,
+        CSS, CSS_URL, CSS_COMMENT,
+        JSON
+    }
+
+    /* Compared against raw bytes, so these must stay lowercase ASCII. */
+    private static final String DATA_SCHEME = "data:";
+    private static final String CSS_URL_OPEN = "url(";
+    private static final String WHITESPACE = " \t\n\r\f";
+
+    /**
+     * Largest block that is copied through at once. The part of a block
+     * after the byte that ends it is pushed back, so this is also the size
+     * of the pushback buffer (which has to hold the longest end tag too).
+     */
+    private static final int BLOCK_LENGTH = 4096;
+
+    private final ReplacementRules rules;
+    private final Charset charset;
+    private final PushbackInputStream pushback;
+
+    private State state;
+
+    /** Number of bytes matched so far of a multi-byte token like "url(". */
+    private int tokenPos = 0;
+    private boolean cssSlash = false;
+
+    /** Name of the tag being read, for finding style and script bodies. */
+    private final StringBuilder tagName = new StringBuilder();
+    private boolean tagNameDone = false;
+    private int lastTagByte = -1;
+
+    /** Open JSON containers, true for objects and false for arrays. */
+    private final Deque<Boolean> jsonContainers = new ArrayDeque<Boolean>();
+    private boolean jsonExpectKey = false;
+
+    /** The context currently being read, if any. */
+    private ContextSegment segment;
+    private InputStream segmentReader;
+
+    public ContextScopedRewriteStream(InputStream source, Syntax syntax,
+            ReplacementRules rules, Charset charset) {
+        super(new PushbackInputStream(source, BLOCK_LENGTH));
+
+        this.pushback = (PushbackInputStream)this.source;
+        this.rules = rules;
+        this.charset = charset;
+
+        switch (syntax) {
+            case MARKUP: state = State.TEXT; break;
+            case CSS:    state = State.CSS;  break;
+            default:     state = State.JSON; break;
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (segmentReader != null) {
+            int b = segmentReader.read();
+
+            if (b != -1) {
+                return b;
+            }
+
+            ContextSegment ended = segment;
+            segment = null;
+            segmentReader = null;
+
+            if (ended.terminator == -1) {
+                return -1;
+            }
+            // the end tag of a raw text body was left in the stream
+            else if (ended.terminator == RawTextSegment.END_TAG) {
+                return read();
+            }
+            /* Closing quotes belong to the context, but a byte that only
+             * ended an unquoted value still has to be tokenized. */
+            else if (ended.quoted) {
+                return ended.terminator;
+            }
+            else {
+                return scan(ended.terminator);
+            }
+        }
+
+        int b = source.read();
+
+        if (b == -1) {
+            return -1;
+        }
+
+        return scan(b);
+    }
+
+    /**
+     * Reads like {@link InputStream#read(byte[], int, int)}, but copies
+     * regions that can't hold a URL in blocks without tokenizing every byte.
+     */
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+
+        int count = 0;
+
+        while (count < len) {
+            int copied = copyOpaque(b, off + count, len - count);
+
+            if (copied > 0) {
+                count += copied;
+                continue;
+            }
+
+            int c = read();
+
+            if (c == -1) {
+                break;
+            }
+
+            b[off + count++] = (byte)c;
+        }
+
+        return count == 0 ? -1 : count;
+    }
+
+    /**
+     * Copies bytes up to (but not including) the next byte that could change
+     * the state of the tokenizer, when we are in a region that is passed
+     * through unchanged: text, comments and unrewritten values like data:
+     * URIs and JSON keys.
+     * @return number of bytes copied, 0 if the next byte must be tokenized
+     */
+    private int copyOpaque(byte[] b, int off, int len) throws IOException {
+        final String stops;
+
+        if (segmentReader != null) {
+            /* Only a segment that is read directly (not through the match
+             * streams or a nested tokenizer) is opaque. */
+            if (segmentReader != segment || segment.ended || segment.escaped) {
+                return 0;
+            }
+            stops = segment.escapes ?
+                    segment.terminators + "\\" : segment.terminators;
+        }
+        else if (state == State.TEXT) {
+            stops = "<";
+        }
+        else if (state == State.COMMENT && tokenPos == 0) {
+            stops = "-";
+        }
+        else if (state == State.CSS_COMMENT && tokenPos == 0) {
+            stops = "*";
+        }
+        else {
+            return 0;
+        }
+
+        int read = pushback.read(b, off, Math.min(len, BLOCK_LENGTH));
+
+        if (read <= 0) {
+            return 0;
+        }
+
+        int copied = 0;
+
+        while (copied < read && stops.indexOf(b[off + copied] & 0xFF) < 0) {
+            copied++;
+        }
+
+        pushback.unread(b, off + copied, read - copied);
+
+        return copied;
+    }
+
+    /**
+     * Advances the tokenizer by one byte and returns that byte. If the byte
+     * opens a URL-bearing context, a segment is set up so that following
+     * reads come from it.
+     */
+    private int scan(int b) throws IOException {
+        switch (state) {
+            case TEXT:
+                if (b == '<') {
+                    state = State.TAG_OPEN;
+                    tokenPos = 0;
+                }
+                return b;
+            case TAG_OPEN:
+                /* As in the HTML tokenizer, a '<' that isn't followed by a
+                 * letter, '/', '!' or '?' is just text (e.g. "a < b"). */
+                if (tokenPos == 0 && !isTagStart(b)) {
+                    state = State.TEXT;
+                    return scan(b);
+                }
+                /* "<!--" opens a comment, anything else is treated as a
+                 * tag (including doctypes and closing tags). */
+                if ((tokenPos == 0 && b == '!') ||
+                    (tokenPos > 0 && tokenPos < 3 && b == '-')) {
+                    tokenPos++;
+
+                    if (tokenPos == 3) {
+                        state = State.COMMENT;
+                        tokenPos = 0;
+                    }
+                    return b;
+                }
+                state = State.TAG;
+                tagName.setLength(0);
+                tagNameDone = false;
+                return scan(b);
+            case TAG:
+                if (!tagNameDone) {
+                    if (Character.isLetterOrDigit(b)) {
+                        tagName.append((char)Character.toLowerCase(b));
+                    }
+                    else {
+                        tagNameDone = true;
+                    }
+                }
+
+                if (b == '>') {
+                    state = State.TEXT;
+
+                    if (lastTagByte != '/') {
+                        openRawTextIfNeeded();
+                    }
+                }
+                else if (b == '=') {
+                    state = State.ATTR_EQUALS;
+                }
+                else if (b == '"' || b == '\'') {
+                    openContext(String.valueOf((char)b), true, false, true);
+                }
+                lastTagByte = b;
+                return b;
+            case ATTR_EQUALS:
+                if (WHITESPACE.indexOf(b) >= 0) {
+                    return b;
+                }
+                state = State.TAG;
+
+                if (b == '"' || b == '\'' || b == '>') {
+                    return scan(b);
+                }
+
+                pushback.unread(b);
+                openContext(WHITESPACE + ">", false, false, true);
+                return read();
+            case COMMENT:
+                // count consecutive dashes to find the closing "-->"
+                if (b == '-') {
+                    tokenPos++;
+                }
+                else if (b == '>' && tokenPos >= 2) {
+                    state = State.TEXT;
+                    tokenPos = 0;
+                }
+                else {
+                    tokenPos = 0;
+                }
+                return b;
+            case CSS:
+                if (b == '*' && cssSlash) {
+                    state = State.CSS_COMMENT;
+                    tokenPos = 0;
+                    cssSlash = false;
+                    return b;
+                }
+                cssSlash = (b == '/');
+
+                if (b == '"' || b == '\'') {
+                    tokenPos = 0;
+                    openContext(String.valueOf((char)b), true, true, true);
+                }
+                else {
+                    scanCssUrlOpen(b);
+                }
+                return b;
+            case CSS_URL:
+                if (WHITESPACE.indexOf(b) >= 0) {
+                    return b;
+                }
+                state = State.CSS;
+
+                if (b == '"' || b == '\'') {
+                    return scan(b);
+                }
+                else if (b == ')') {
+                    return b;
+                }
+
+                pushback.unread(b);
+                openContext(")", false, true, true);
+                return read();
+            case CSS_COMMENT:
+                if (b == '/' && tokenPos == 1) {
+                    state = State.CSS;
+                    tokenPos = 0;
+                }
+                else {
+                    tokenPos = (b == '*') ? 1 : 0;
+                }
+                return b;
+            default:
+                return scanJson(b);
+        }
+    }
+
+    private static boolean isTagStart(int b) {
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') ||
+               b == '/' || b == '!' || b == '?';
+    }
+
+    private void scanCssUrlOpen(int b) {
+        int lower = Character.toLowerCase(b);
+
+        if (lower == CSS_URL_OPEN.charAt(tokenPos)) {
+            tokenPos++;
+        }
+        else {
+            tokenPos = (lower == CSS_URL_OPEN.charAt(0)) ? 1 : 0;
+        }
+
+        if (tokenPos == CSS_URL_OPEN.length()) {
+            state = State.CSS_URL;
+            tokenPos = 0;
+        }
+    }
+
+    private int scanJson(int b) throws IOException {
+        switch (b) {
+            case '{':
+                jsonContainers.push(Boolean.TRUE);
+                jsonExpectKey = true;
+                break;
+            case '[':
+                jsonContainers.push(Boolean.FALSE);
+                jsonExpectKey = false;
+                break;
+            case '}':
+            case ']':
+                jsonContainers.poll();
+                jsonExpectKey = false;
+                break;
+            case ':':
+                jsonExpectKey = false;
+                break;
+            case ',':
+                jsonExpectKey = Boolean.TRUE.equals(jsonContainers.peek());
+                break;
+            case '"':
+                // keys are never rewritten, only string values
+                openContext("\"", true, true, !jsonExpectKey);
+                break;
+        }
+
+        return b;
+    }
+
+    /**
+     * Starts a context that lasts until one of the terminator bytes is read.
+     * Values that start with the data: scheme are copied without scanning
+     * since they are opaque and often very large.
+     */
+    private void openContext(String terminators, boolean quoted,
+            boolean escapes, boolean rewrite) throws IOException {
+        segment = new ContextSegment(pushback, terminators, quoted, escapes);
+
+        if (rewrite && !peekMatches(pushback, DATA_SCHEME)) {
+            segmentReader = rules.nest(segment, charset);
+        }
+        else {
+            segmentReader = segment;
+        }
+    }
+
+    /**
+     * Starts reading the body of a style or script element, which runs
+     * until the matching end tag.
+     */
+    private void openRawTextIfNeeded() {
+        String name = tagName.toString();
+
+        if (name.equals("style")) {
+            segment = new RawTextSegment(pushback, "/style");
+            segmentReader = new ContextScopedRewriteStream(segment, Syntax.CSS,
+                    rules, charset);
+        }
+        else if (name.equals("script")) {
+            segment = new RawTextSegment(pushback, "/script");
+            segmentReader = rules.nest(segment, charset);
+        }
+    }
+
+    /**
+     * Stream over a single URL-bearing context. It ends just before the first
+     * unescaped terminator byte and remembers that byte so that the
+     * tokenizer can pick up where the context ended.
+     */
+    private static class ContextSegment extends InputStream {
+        protected final InputStream source;
+        private final String terminators;
+        private final boolean escapes;
+
+        final boolean quoted;
+        int terminator = -1;
+
+        protected boolean ended = false;
+        private boolean escaped = false;
+
+        ContextSegment(InputStream source, String terminators,
+                boolean quoted, boolean escapes) {
+            this.source = source;
+            this.terminators = terminators;
+            this.quoted = quoted;
+            this.escapes = escapes;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (ended) {
+                return -1;
+            }
+
+            int b = source.read();
+
+            if (b == -1 || (!escaped && terminators.indexOf(b) >= 0)) {
+                terminator = b;
+                ended = true;
+                return -1;
+            }
+
+            escaped = escapes && !escaped && b == '\\';
+
+            return b;
+        }
+    }
+
+    /**
+     * Stream over the body of a style or script element. It ends just
+     * before the end tag, which is left in the stream to be tokenized.
+     */
+    private static class RawTextSegment extends ContextSegment {
+        static final int END_TAG = -2;
+
+        private final String endTag;
+
+        /**
+         * @param source stream that the end tag can be pushed back onto
+         * @param endTag lowercase end tag without the leading '&lt;'
+         */
+        RawTextSegment(PushbackInputStream source, String endTag) {
+            super(source, "", false, false);
+            this.endTag = endTag;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (ended) {
+                return -1;
+            }
+
+            int b = source.read();
+
+            if (b == '<' && peekMatches((PushbackInputStream)source, endTag)) {
+                ((PushbackInputStream)source).unread(b);
+                b = END_TAG;
+            }
+
+            if (b < 0) {
+                terminator = b;
+                ended = true;
+                return -1;
+            }
+
+            return b;
+        }
+    }
+
+    /**
+     * Checks whether the next bytes in a stream match some lowercase ASCII
+     * text, ignoring case. The bytes are always left in the stream.
+     */
+    private static boolean peekMatches(PushbackInputStream in, String text)
+            throws IOException {
+        byte[] peeked = new byte[text.length()];
+        int len = 0;
+        boolean matches = true;
+
+        while (len < peeked.length) {
+            int b = in.read();
+
+            if (b == -1) {
+                matches = false;
+                break;
+            }
+
+            peeked[len++] = (byte)b;
+
+            if (Character.toLowerCase(b) != text.charAt(len - 1)) {
+                matches = false;
+                break;
+            }
+        }
+
+        in.unread(peeked, 0, len);
+
+        return matches;
+    }
+}
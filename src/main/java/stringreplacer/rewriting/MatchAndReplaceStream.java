@@ -40,15 +40,23 @@ class MatchAndReplaceStream extends InputRewriterStream {
     private final StringBuffer nestedInputStreamRecord = new StringBuffer();
 
     
+    /**
+     * Creates a stream that matches and replaces text encoded as UTF-8.
+     */
     public MatchAndReplaceStream(InputStream source, String matchText,
             String replaceText) {
+        this(source, new ReplacementRules.Rule(matchText, replaceText,
+                CharsetDetector.DEFAULT_CHARSET));
+    }
+
+    public MatchAndReplaceStream(InputStream source, ReplacementRules.Rule rule) {
         super(source);
         
-        this.matchText = matchText;
-        this.replaceText = replaceText;
+        this.matchText = rule.matchText;
+        this.replaceText = rule.replaceText;
         
-        this.match = matchText.getBytes();
-        this.replace = replaceText.getBytes();
+        this.match = rule.match;
+        this.replace = rule.replace;
         
         buffer = new ArrayBlockingQueue<Byte>(match.length + 1);
 
@@ -81,23 +89,28 @@ class MatchAndReplaceStream extends InputRewriterStream {
                 buffer.clear();
             }
 
-            return r;
+            return r & 0xFF;
         }
         else if (!buffer.isEmpty()) {
-            return buffer.poll();
+            return buffer.poll() & 0xFF;
         }
 
         int sourceRead;
         
+        /* Bytes are compared unsigned so that match text outside of ASCII
+         * (or encoded in a multi-byte charset) can match as well. */
         for (byte b : match) {
             sourceRead = source.read();
             
-            if (b != sourceRead && buffer.isEmpty()) {
+            if ((b & 0xFF) != sourceRead && buffer.isEmpty()) {
                 return sourceRead;
             }
             // 1+n matching, if true (failure) add to the buffer and recurse
-            else if (b != sourceRead) {
-                buffer.add((byte)sourceRead);
+            else if ((b & 0xFF) != sourceRead) {
+                // at the end of the stream only the partial match is left
+                if (sourceRead != -1) {
+                    buffer.add((byte)sourceRead);
+                }
                 return this.read();
             }
             else {
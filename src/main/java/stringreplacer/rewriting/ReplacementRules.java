@@ -0,0 +1,135 @@
+/* Copyright 2011 Elijah Zupancic
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package stringreplacer.rewriting;
+
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The configured match and replace pairs, encoded into bytes once per
+ * charset. Rewriting works directly on the bytes sent by the origin, so a
+ * document is matched against the rules encoded in its own charset instead
+ * of being decoded and re-encoded for every request.
+ *
+ * @author Elijah Zupancic
+ */
+class ReplacementRules {
+    /** Charsets that we encode the rules for up front. */
+    private static final String[] PRECOMPILED_CHARSETS =
+            new String[] { "UTF-8", "ISO-8859-1", "UTF-16BE", "UTF-16LE" };
+
+    private final Map<String, String> replacements;
+
+    private final ConcurrentMap<Charset, List<Rule>> encoded =
+            new ConcurrentHashMap<Charset, List<Rule>>();
+
+    public ReplacementRules(Map<String, String> replacements) {
+        this.replacements = Collections.unmodifiableMap(
+                new LinkedHashMap<String, String>(replacements));
+
+        for (String charset : PRECOMPILED_CHARSETS) {
+            forCharset(Charset.forName(charset));
+        }
+    }
+
+    /**
+     * @return the match and replace pairs as text
+     */
+    public Map<String, String> getReplacements() {
+        return replacements;
+    }
+
+    /**
+     * Returns the rules encoded in the given charset, encoding and caching
+     * them the first time a charset is seen.
+     */
+    public List<Rule> forCharset(Charset charset) {
+        charset = withByteOrder(charset);
+        List<Rule> rules = encoded.get(charset);
+
+        if (rules == null) {
+            rules = new ArrayList<Rule>(replacements.size());
+
+            for (Map.Entry<String, String> pair : replacements.entrySet()) {
+                rules.add(new Rule(pair.getKey(), pair.getValue(), charset));
+            }
+
+            rules = Collections.unmodifiableList(rules);
+            List<Rule> existing = encoded.putIfAbsent(charset, rules);
+
+            if (existing != null) {
+                rules = existing;
+            }
+        }
+
+        return rules;
+    }
+
+    /**
+     * Charsets without a byte order, like UTF-16, prefix a BOM when encoding.
+     * A BOM only ever appears at the start of a document, so the rules are
+     * encoded in the big endian form that those charsets default to.
+     */
+    private static Charset withByteOrder(Charset charset) {
+        String name = charset.name();
+
+        if (name.equals("UTF-16") || name.equals("UTF-32")) {
+            return Charset.forName(name + "BE");
+        }
+
+        return charset;
+    }
+
+    /**
+     * Wraps a stream in one nested match and replace stream per rule.
+     * @param in source stream
+     * @param charset charset that the source stream is encoded in
+     * @return outermost stream of the chain
+     */
+    public InputStream nest(InputStream in, Charset charset) {
+        InputStream attached = in;
+
+        for (Rule rule : forCharset(charset)) {
+            attached = new MatchAndReplaceStream(attached, rule);
+        }
+
+        return attached;
+    }
+
+    /**
+     * A single match and replace pair along with its encoded bytes.
+     */
+    static class Rule {
+        final String matchText;
+        final String replaceText;
+        final byte[] match;
+        final byte[] replace;
+
+        Rule(String matchText, String replaceText, Charset charset) {
+            this.matchText = matchText;
+            this.replaceText = replaceText;
+            this.match = matchText.getBytes(charset);
+            this.replace = replaceText.getBytes(charset);
+        }
+    }
+}
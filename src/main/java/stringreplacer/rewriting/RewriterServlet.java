@@ -21,9 +21,9 @@ import java.nio.charset.Charset;
 import java.util.HashMap;
 import java.util.Map;
 import java.io.InputStream;
-import java.net.URLConnection;
 import com.google.common.collect.ImmutableList;
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.BufferedOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -36,6 +36,7 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.TeeInputStream;
 import org.apache.commons.lang.StringUtils;
 import static org.apache.commons.lang.StringUtils.isNotEmpty;
         
@@ -54,9 +55,29 @@ public class RewriterServlet extends HttpServlet {
             ImmutableList.of("accept", "user-agent",
                              "accept-language", "accept-charset",
                              "cookie", "x-forwarded-for",
-                             "x-forwarded-host", "x-forwarded-server");   
+                             "x-forwarded-host", "x-forwarded-server");
+    private static final List<String> conditionalHeadersToCopy =
+            ImmutableList.of("if-none-match", "if-modified-since");
+    /* Range requests are only forwarded when we don't have to rewrite the
+     * body, see openUrlConnection(). */
+    private static final List<String> rangeHeadersToCopy =
+            ImmutableList.of("range", "if-range");
+    /* Origin headers that describe the length of the origin body, which
+     * no longer applies once the body has been rewritten. */
+    private static final List<String> lengthHeaders =
+            ImmutableList.of("content-length", "content-range",
+                             "accept-ranges");
+    private static final Charset HEADER_CHARSET = Charset.forName("ISO-8859-1");
+    private static final Charset REPLACEMENTS_CHARSET = Charset.forName("UTF-8");
     
-    private Map<String, String> replacements;
+    private ReplacementRules replacements;
+
+    /* When enabled, documents that we can tokenize are only rewritten inside
+     * of URL-bearing contexts (attribute values, CSS urls, JSON strings). */
+    private boolean contextScopedRewriting = false;
+
+    /* Rewritten copies of documents, used to serve byte ranges of them. */
+    private RewrittenBodyCache rewrittenBodies;
     
     public RewriterServlet() {
         super();
@@ -67,7 +88,13 @@ public class RewriterServlet extends HttpServlet {
         super.init();
                 
         try {
-            this.replacements = parseReplacementsData("/WEB-INF/replacements.csv");
+            this.replacements = new ReplacementRules(
+                    parseReplacementsData("/WEB-INF/replacements.csv"));
+            this.contextScopedRewriting = Boolean.parseBoolean(
+                    getInitParameter("contextScopedRewriting"));
+            this.rewrittenBodies = new RewrittenBodyCache(
+                    getIntInitParameter("rewrittenBodyCacheSize", 0),
+                    getIntInitParameter("rewrittenBodyMaxLength", 1048576));
 
             //ResourceLoader replacementData = new ResourceLoader("/WEB-INF/replacements.csv");
             //this.replacements = parseReplacementsData(replacementData.getInputStream());
@@ -115,64 +142,99 @@ public class RewriterServlet extends HttpServlet {
             path  = uri.substring(forwardUriPos) + query;
         }
 
-        final URLConnection connection;
+        /* A byte range of a rewritten document can only be served from a
+         * rewritten copy of the whole document. If we have one, we ask the
+         * origin whether it is still current instead of forwarding the
+         * range. */
+        final String cacheKey = origin + path;
+        final boolean cacheCandidate = rewrittenBodies.isCandidate(request);
+        final RewrittenBodyCache.StoredBody stored = cacheCandidate ?
+                rewrittenBodies.get(cacheKey) : null;
+        final boolean rangeForwarded = stored == null &&
+                isNotEmpty(request.getHeader("range"));
+
+        HttpURLConnection connection;
         
         try {
-            connection = openUrlConnection(origin, path, request);
+            connection = openUrlConnection(origin, path, request,
+                    stored == null, stored);
             log("Opening: " + connection);
         } catch (FileNotFoundException fnfe) {
             response.sendError(HttpServletResponse.SC_NOT_FOUND);
             return;
         }
+
+        if (stored != null &&
+                connection.getResponseCode() == HttpServletResponse.SC_NOT_MODIFIED) {
+            copyRangeFromStored(stored, connection, request, response);
+            connection.disconnect();
+            return;
+        }
         
         /* We now search the content type of all forwarded requests for content
          * types that start with our matching strings because it will be only
          * these content types that we will act upon to rewrite string data.
          */
-        boolean matching = false;
-        {
-            final String originContentType = connection.getContentType()
-                    .trim().toLowerCase();
-            for (String contentType : targetContentTypes) {
-                matching = originContentType.startsWith(contentType);
-                if (matching) { break; }
-            }
+        String originContentType = getContentType(connection);
+        boolean matching = isTargetContentType(originContentType);
+
+        /* The origin answered the range of a document that we need to
+         * rewrite, either with the range or by rejecting it. Replacing
+         * strings changes the offsets in the document, so the range doesn't
+         * apply to what we send; we fetch the whole thing again and send it
+         * as a full response instead. */
+        if (matching && rangeForwarded && isRangeResponse(connection)) {
+            connection.disconnect();
+            connection = openUrlConnection(origin, path, request, false, null);
+            log("Reopening without range: " + connection);
+
+            originContentType = getContentType(connection);
+            matching = isTargetContentType(originContentType);
         }
 
+        final int status = connection.getResponseCode();
+        response.setStatus(status);
         
-        /* We need to pass all headers that were sent from the origin server
-         * to the client, otherwise the client will get a bunch of garbage
-         * like raw gzipped output.
-         */
-        {
-            for (String key : connection.getHeaderFields().keySet()) {
-                String value = connection.getHeaderField(key);
-                
-                /* We have received a HTTP relocation request. We will want to
-                 * rewrite this url as well. */
-                if (key != null && key.trim().equalsIgnoreCase("Location")) {
-                    log("Redirect: " + value + " => ");
-                    value = processStringWithRewriters(value);
-                    log(value);
-                }
-                
-                response.setHeader(key, value);
-            }
-            
-            response.setContentType(connection.getContentType());
-        }
+        copyResponseHeaders(connection, response, matching);
+        response.setContentType(connection.getContentType());
         
         /* Use memory to buffer origin request stream otherwise we might experience
          * some hiccups in performance. */
         InputStream in = null;
         
         try {
-            in = new BufferedInputStream(connection.getInputStream());
+            InputStream body = status >= 400 ?
+                    connection.getErrorStream() : connection.getInputStream();
+
+            if (body == null) {
+                return;
+            }
+
+            in = new BufferedInputStream(body);
             
             // Rewrite the input stream
             if (matching) {
-                in = attachNestedStreams(in);
-                copyFromOrigin(in, response);
+                Charset charset = CharsetDetector.detect(in, originContentType);
+                in = attachRewriteStreams(in, originContentType, charset);
+
+                /* A range was asked for but we had to send the whole document.
+                 * Keep a copy of it while sending it, so that the next range
+                 * request for it can be served. */
+                if (cacheCandidate && status == HttpServletResponse.SC_OK &&
+                        rewrittenBodies.isCacheable(connection)) {
+                    RewrittenBodyCache.Capture copy = rewrittenBodies.newCapture();
+                    copyFromOrigin(new TeeInputStream(in, copy), response);
+
+                    if (copy.toByteArray() != null) {
+                        rewrittenBodies.put(cacheKey,
+                                new RewrittenBodyCache.StoredBody(
+                                copy.toByteArray(), connection.getContentType(),
+                                connection.getHeaderField("ETag"),
+                                connection.getHeaderField("Last-Modified")));
+                    }
+                } else {
+                    copyFromOrigin(in, response);
+                }
             
             // Do nothing and just copy it
             } else {
@@ -183,36 +245,186 @@ public class RewriterServlet extends HttpServlet {
             IOUtils.closeQuietly(in);
         }
     }
-    
-    protected InputStream attachNestedStreams(InputStream in) throws IOException {
-        InputStream attached = in;
 
-        /* Add an input stream filter for every matching pair configured.
-         * It still remains to be seen how well this approach performs. */
-        for (String match : replacements.keySet()) {
-            String replace = replacements.get(match);
+    /**
+     * @return the lower cased content type of the origin response or an
+     * empty string if it has none
+     */
+    private static String getContentType(HttpURLConnection connection) {
+        return connection.getContentType() == null ?
+                "" : connection.getContentType().trim().toLowerCase();
+    }
+
+    /**
+     * @return true if documents of the given content type are rewritten
+     */
+    private static boolean isTargetContentType(String originContentType) {
+        for (String contentType : targetContentTypes) {
+            if (originContentType.startsWith(contentType)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return true if the origin answered with a range of the document
+     * (206) or rejected the range that was asked for (416)
+     */
+    private static boolean isRangeResponse(HttpURLConnection connection)
+            throws IOException {
+        int status = connection.getResponseCode();
+
+        return status == HttpServletResponse.SC_PARTIAL_CONTENT ||
+               status == HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE;
+    }
+
+    /**
+     * We need to pass all headers that were sent from the origin server
+     * to the client, otherwise the client will get a bunch of garbage
+     * like raw gzipped output.
+     * @param connection origin connection to copy the headers of
+     * @param response source HTTP response object
+     * @param rewritten true if the body sent is not the origin body, in
+     *                  which case the origin's length headers don't apply
+     */
+    protected void copyResponseHeaders(HttpURLConnection connection,
+            HttpServletResponse response, boolean rewritten)
+            throws IOException {
+        for (String key : connection.getHeaderFields().keySet()) {
+            // the null key holds the status line
+            if (key == null) {
+                continue;
+            }
+
+            String value = connection.getHeaderField(key);
+
+            if (rewritten && lengthHeaders.contains(key.trim().toLowerCase())) {
+                continue;
+            }
+            
+            /* We have received a HTTP relocation request. We will want to
+             * rewrite this url as well. */
+            if (key.trim().equalsIgnoreCase("Location")) {
+                log("Redirect: " + value + " => ");
+                value = processStringWithRewriters(value);
+                log(value);
+            }
+            
+            response.setHeader(key, value);
+        }
+    }
+
+    /**
+     * Sends a stored rewritten document, or the requested range of it,
+     * after the origin has confirmed that it is still current.
+     * @param stored rewritten copy of the document
+     * @param notModified the origin's 304 response to our revalidation
+     * @param request source HTTP request object
+     * @param response source HTTP response object
+     */
+    protected void copyRangeFromStored(RewrittenBodyCache.StoredBody stored,
+            HttpURLConnection notModified, HttpServletRequest request,
+            HttpServletResponse response)
+            throws IOException {
+        final long total = stored.body.length;
 
-            attached = new MatchAndReplaceStream(in, match, replace);
+        if (stored.etag != null) {
+            response.setHeader("ETag", stored.etag);
+        }
+        if (stored.lastModified != null) {
+            response.setHeader("Last-Modified", stored.lastModified);
+        }
+
+        // the 304 carries the current caching headers (Cache-Control etc.)
+        copyResponseHeaders(notModified, response, true);
+        response.setContentType(stored.contentType);
+        response.setHeader("Accept-Ranges", "bytes");
+
+        /* We replaced the client's validators with our own when asking the
+         * origin, so we check the client's validators against our copy. */
+        if (stored.isNotModified(request.getHeader("If-None-Match"),
+                request.getHeader("If-Modified-Since"))) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
         }
 
-        return attached;
+        ByteRange range = stored.matchesIfRange(request.getHeader("If-Range")) ?
+                ByteRange.parse(request.getHeader("Range"), total) : null;
+
+        if (range == null) {
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.setContentLength((int)total);
+            copyFromOrigin(new ByteArrayInputStream(stored.body), response);
+        }
+        else if (!range.isSatisfiable()) {
+            response.setStatus(
+                    HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            response.setHeader("Content-Range", range.toContentRange(total));
+        }
+        else {
+            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            response.setHeader("Content-Range", range.toContentRange(total));
+            response.setContentLength((int)range.getLength());
+            copyFromOrigin(new ByteArrayInputStream(stored.body,
+                    (int)range.first, (int)range.getLength()), response);
+        }
+    }
+    
+    /**
+     * Attaches the streams used to rewrite a document of the given content
+     * type. When context scoped rewriting is enabled and we know how to
+     * tokenize the content type, only URL-bearing contexts are scanned.
+     */
+    protected InputStream attachRewriteStreams(InputStream in,
+            String contentType, Charset charset) throws IOException {
+        ContextScopedRewriteStream.Syntax syntax =
+                ContextScopedRewriteStream.Syntax.forContentType(contentType);
+
+        if (contextScopedRewriting && syntax != null &&
+                CharsetDetector.isAsciiCompatible(charset)) {
+            return new ContextScopedRewriteStream(in, syntax, replacements,
+                    charset);
+        }
+
+        return attachNestedStreams(in, charset);
+    }
+
+    protected InputStream attachNestedStreams(InputStream in, Charset charset)
+            throws IOException {
+        /* Add an input stream filter for every matching pair configured.
+         * It still remains to be seen how well this approach performs. */
+        return replacements.nest(in, charset);
     }
     
     protected String processStringWithRewriters(String source) throws IOException {
         InputStream in = null;
         
         try {
-            in = IOUtils.toInputStream(source);
-            attachNestedStreams(in);
-            return IOUtils.toString(in);
+            // HTTP header values are always ISO-8859-1
+            in = IOUtils.toInputStream(source, HEADER_CHARSET.name());
+            in = attachNestedStreams(in, HEADER_CHARSET);
+            return IOUtils.toString(in, HEADER_CHARSET.name());
         }
         finally {
             IOUtils.closeQuietly(in);
         }
     }
     
-    protected URLConnection openUrlConnection(String origin, String path,
-            HttpServletRequest request)
+    /**
+     * Opens a connection to the origin server that forwards the client's
+     * request headers.
+     * @param origin server name of origin server
+     * @param path request URI path
+     * @param request source HTTP request object
+     * @param forwardRange true if the client's Range headers are forwarded
+     * @param revalidate stored rewritten copy whose validators are sent in
+     *                   place of the client's, or null
+     */
+    protected HttpURLConnection openUrlConnection(String origin, String path,
+            HttpServletRequest request, boolean forwardRange,
+            RewrittenBodyCache.StoredBody revalidate)
             throws IOException {
         URL originUrl = new URL("http", origin, path);
 
@@ -223,11 +435,22 @@ public class RewriterServlet extends HttpServlet {
 
         /* In order to have an accurate copy of the site all origin HTTP headers
          * need to be copied. */
-        for (String header : httpHeadersToCopy) {
-            String value = request.getHeader(header);
-                        
-            if (isNotEmpty(value)) {
-                connection.setRequestProperty(header, value);
+        copyRequestHeaders(httpHeadersToCopy, request, connection);
+
+        if (forwardRange) {
+            copyRequestHeaders(rangeHeadersToCopy, request, connection);
+        }
+
+        if (revalidate == null) {
+            copyRequestHeaders(conditionalHeadersToCopy, request, connection);
+        }
+        else {
+            if (revalidate.etag != null) {
+                connection.setRequestProperty("if-none-match", revalidate.etag);
+            }
+            if (revalidate.lastModified != null) {
+                connection.setRequestProperty("if-modified-since",
+                        revalidate.lastModified);
             }
         }
         
@@ -236,6 +459,17 @@ public class RewriterServlet extends HttpServlet {
         return connection;
     }
     
+    private void copyRequestHeaders(List<String> headers,
+            HttpServletRequest request, HttpURLConnection connection) {
+        for (String header : headers) {
+            String value = request.getHeader(header);
+                        
+            if (isNotEmpty(value)) {
+                connection.setRequestProperty(header, value);
+            }
+        }
+    }
+    
     /**
      * This method copies static content from the origin server to the client.
      * @param origin server name of origin server
@@ -274,6 +508,12 @@ public class RewriterServlet extends HttpServlet {
         doRequest(request, response);
     }
     
+    private int getIntInitParameter(String name, int defaultValue) {
+        String value = getInitParameter(name);
+
+        return isNotEmpty(value) ? Integer.parseInt(value.trim()) : defaultValue;
+    }
+
     private Map<String, String> parseReplacementsData(String path)
             throws IOException {
         InputStream in = getServletContext().getResourceAsStream(path);
@@ -284,8 +524,7 @@ public class RewriterServlet extends HttpServlet {
             throws IOException {
         Map<String, String> matches = new HashMap();
         
-        Scanner scanner = new Scanner(in, 
-                Charset.defaultCharset().displayName());
+        Scanner scanner = new Scanner(in, REPLACEMENTS_CHARSET.name());
         
         while(scanner.hasNext()) {
             String line = scanner.nextLine();
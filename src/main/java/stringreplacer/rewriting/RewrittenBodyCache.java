@@ -0,0 +1,255 @@
+/* Copyright 2011 Elijah Zupancic
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package stringreplacer.rewriting;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Keeps the rewritten copy of recently requested documents so that byte
+ * ranges of them can be served. A range of the origin body can't be
+ * rewritten on its own, because replacing strings changes the offsets of
+ * everything after them.
+ *
+ * The cache is shared between clients, so it only takes part in range
+ * requests without cookies, and only keeps responses that are the same for
+ * every client (no Set-Cookie, no Vary other than Accept-Encoding). Copies
+ * need an ETag or Last-Modified header so that they can be revalidated
+ * against the origin before use. Least recently used copies are dropped
+ * once the cache is full.
+ *
+ * @author Elijah Zupancic
+ */
+class RewrittenBodyCache {
+    private final Map<String, StoredBody> bodies;
+    private final int maxEntries;
+    private final int maxBodyLength;
+
+    /**
+     * @param maxEntries number of documents to keep, 0 disables the cache
+     * @param maxBodyLength longest rewritten document that is kept
+     */
+    public RewrittenBodyCache(final int maxEntries, int maxBodyLength) {
+        this.maxEntries = maxEntries;
+        this.maxBodyLength = maxBodyLength;
+        this.bodies = Collections.synchronizedMap(
+                new LinkedHashMap<String, StoredBody>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<String, StoredBody> eldest) {
+                return size() > maxEntries;
+            }
+        });
+    }
+
+    public StoredBody get(String url) {
+        return bodies.get(url);
+    }
+
+    public void put(String url, StoredBody body) {
+        if (body.body.length <= maxBodyLength) {
+            bodies.put(url, body);
+        }
+    }
+
+    /**
+     * @return true if the request can be served from, and its response
+     * stored in, the cache
+     */
+    public boolean isCandidate(HttpServletRequest request) {
+        return maxEntries > 0 &&
+               request.getHeader("Range") != null &&
+               request.getHeader("Cookie") == null;
+    }
+
+    /**
+     * @return true if the rewritten response to the connection may be kept
+     */
+    public boolean isCacheable(HttpURLConnection connection) {
+        String cacheControl = connection.getHeaderField("Cache-Control");
+        String vary = connection.getHeaderField("Vary");
+
+        if (cacheControl != null &&
+            (cacheControl.toLowerCase().contains("no-store") ||
+             cacheControl.toLowerCase().contains("private"))) {
+            return false;
+        }
+        else if (connection.getHeaderField("Set-Cookie") != null) {
+            return false;
+        }
+        else if (vary != null) {
+            for (String header : vary.split(",")) {
+                if (!header.trim().equalsIgnoreCase("Accept-Encoding")) {
+                    return false;
+                }
+            }
+        }
+
+        return connection.getHeaderField("ETag") != null ||
+               connection.getHeaderField("Last-Modified") != null;
+    }
+
+    /**
+     * @return stream that collects a rewritten body as it is sent
+     */
+    public Capture newCapture() {
+        return new Capture(maxBodyLength);
+    }
+
+    /**
+     * Collects a copy of a rewritten body, giving up once the body is longer
+     * than we are willing to keep so that large documents aren't buffered.
+     */
+    static class Capture extends OutputStream {
+        private final int maxLength;
+        private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+        Capture(int maxLength) {
+            this.maxLength = maxLength;
+        }
+
+        @Override
+        public void write(int b) {
+            write(new byte[] { (byte)b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            if (copy == null) {
+                return;
+            }
+            else if (copy.size() + len > maxLength) {
+                copy = null;
+                return;
+            }
+
+            copy.write(b, off, len);
+        }
+
+        /**
+         * @return the collected body or null if it was too long
+         */
+        public byte[] toByteArray() {
+            return copy == null ? null : copy.toByteArray();
+        }
+    }
+
+    /**
+     * A rewritten document along with the origin validators it was
+     * rewritten from.
+     */
+    static class StoredBody {
+        final byte[] body;
+        final String contentType;
+        final String etag;
+        final String lastModified;
+
+        StoredBody(byte[] body, String contentType, String etag,
+                String lastModified) {
+            this.body = body;
+            this.contentType = contentType;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * Evaluates a client's conditional headers against this copy. As in
+         * the HTTP spec, If-Modified-Since is only used when there is no
+         * If-None-Match.
+         * @return true if the client's copy is current (304 response)
+         */
+        boolean isNotModified(String ifNoneMatch, String ifModifiedSince) {
+            if (ifNoneMatch != null) {
+                return matchesIfNoneMatch(ifNoneMatch);
+            }
+            else if (ifModifiedSince == null || lastModified == null) {
+                return false;
+            }
+
+            Date modified = parseHttpDate(lastModified);
+            Date since = parseHttpDate(ifModifiedSince);
+
+            return modified != null && since != null && !modified.after(since);
+        }
+
+        /**
+         * Checks an If-None-Match list using the weak comparison, which
+         * ignores the W/ prefix.
+         */
+        private boolean matchesIfNoneMatch(String ifNoneMatch) {
+            if (ifNoneMatch.trim().equals("*")) {
+                return true;
+            }
+            else if (etag == null) {
+                return false;
+            }
+
+            String opaque = stripWeak(etag);
+
+            for (String tag : ifNoneMatch.split(",")) {
+                if (stripWeak(tag).equals(opaque)) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        /**
+         * Checks an If-Range header against this copy. Only strong ETags
+         * can be used to validate a range.
+         */
+        boolean matchesIfRange(String ifRange) {
+            if (ifRange == null) {
+                return true;
+            }
+
+            String value = ifRange.trim();
+
+            return (!value.startsWith("W/") && value.equals(etag)) ||
+                   value.equals(lastModified);
+        }
+
+        private static String stripWeak(String tag) {
+            String trimmed = tag.trim();
+
+            return trimmed.startsWith("W/") ? trimmed.substring(2) : trimmed;
+        }
+
+        private static Date parseHttpDate(String value) {
+            // SimpleDateFormat isn't thread safe, so one is made per call
+            SimpleDateFormat format = new SimpleDateFormat(
+                    "EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("GMT"));
+
+            try {
+                return format.parse(value.trim());
+            } catch (ParseException e) {
+                return null;
+            }
+        }
+    }
+}
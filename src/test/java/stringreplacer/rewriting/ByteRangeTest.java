@@ -0,0 +1,77 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package stringreplacer.rewriting;
+
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author elijah
+ */
+public class ByteRangeTest extends TestCase {
+
+    public ByteRangeTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * Test of parse method with a start and end offset.
+     */
+    public void testClosedRange() throws Exception {
+        System.out.println("ClosedRange");
+
+        ByteRange range = ByteRange.parse("bytes=10-19", 100);
+
+        assertEquals(10, range.first);
+        assertEquals(19, range.last);
+        assertEquals(10, range.getLength());
+        assertEquals("bytes 10-19/100", range.toContentRange(100));
+    }
+
+    /**
+     * Test of parse method with open ended and suffix ranges, which are
+     * clamped to the length of the body.
+     */
+    public void testOpenAndSuffixRanges() throws Exception {
+        System.out.println("OpenAndSuffixRanges");
+
+        ByteRange open = ByteRange.parse("bytes=90-", 100);
+        assertEquals(90, open.first);
+        assertEquals(99, open.last);
+
+        ByteRange suffix = ByteRange.parse("bytes=-500", 100);
+        assertEquals(0, suffix.first);
+        assertEquals(99, suffix.last);
+
+        ByteRange clamped = ByteRange.parse("bytes=50-1000", 100);
+        assertEquals(99, clamped.last);
+    }
+
+    /**
+     * Test of parse method with ranges that can't be served.
+     */
+    public void testUnsatisfiable() throws Exception {
+        System.out.println("Unsatisfiable");
+
+        ByteRange range = ByteRange.parse("bytes=100-", 100);
+
+        assertFalse("Range past the end is satisfiable", range.isSatisfiable());
+        assertEquals("bytes */100", range.toContentRange(100));
+    }
+
+    /**
+     * Test of parse method with headers that are ignored.
+     */
+    public void testIgnored() throws Exception {
+        System.out.println("Ignored");
+
+        assertNull(ByteRange.parse(null, 100));
+        assertNull(ByteRange.parse("bytes=0-1,5-6", 100));
+        assertNull(ByteRange.parse("bytes=20-10", 100));
+        assertNull(ByteRange.parse("items=0-1", 100));
+        assertNull(ByteRange.parse("bytes=a-b", 100));
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package stringreplacer.rewriting;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import junit.framework.TestCase;
+import org.apache.commons.io.IOUtils;
+
+/**
+ *
+ * @author elijah
+ */
+public class CharsetDetectorTest extends TestCase {
+
+    public CharsetDetectorTest(String testName) {
+        super(testName);
+    }
+
+    private Charset detect(byte[] body, String contentType) throws Exception {
+        InputStream in = new BufferedInputStream(new ByteArrayInputStream(body));
+
+        try {
+            Charset charset = CharsetDetector.detect(in, contentType);
+
+            assertTrue("Fails to leave the stream unread",
+                    Arrays.equals(body, IOUtils.toByteArray(in)));
+
+            return charset;
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Test detection from the Content-Type charset parameter.
+     */
+    public void testContentType() throws Exception {
+        System.out.println("ContentType");
+
+        byte[] body = "<html></html>".getBytes("UTF-16BE");
+
+        assertEquals(Charset.forName("UTF-16BE"),
+                detect(body, "text/html; charset=\"utf-16be\""));
+    }
+
+    /**
+     * Test that charsets which can only decode are skipped, since the rules
+     * can't be encoded in them.
+     */
+    public void testDecodeOnlyCharset() throws Exception {
+        System.out.println("DecodeOnlyCharset");
+
+        byte[] body = ("<html><head><meta charset=\"iso-8859-1\">")
+                .getBytes("US-ASCII");
+
+        assertEquals(Charset.forName("ISO-8859-1"),
+                detect(body, "text/html; charset=x-jisautodetect"));
+        assertEquals(CharsetDetector.DEFAULT_CHARSET,
+                detect(body, "application/json; charset=iso-2022-cn"));
+    }
+
+    /**
+     * Test that a byte order mark takes precedence over the Content-Type.
+     */
+    public void testByteOrderMark() throws Exception {
+        System.out.println("ByteOrderMark");
+
+        byte[] body = new byte[] { (byte)0xFF, (byte)0xFE, '<', 0 };
+
+        assertEquals(Charset.forName("UTF-16LE"),
+                detect(body, "text/html; charset=iso-8859-1"));
+    }
+
+    /**
+     * Test detection from a meta tag when no other charset is given.
+     */
+    public void testMetaTag() throws Exception {
+        System.out.println("MetaTag");
+
+        byte[] body = ("<html><head><meta http-equiv=\"Content-Type\" " +
+                "content=\"text/html; charset=windows-1252\">").getBytes("US-ASCII");
+
+        assertEquals(Charset.forName("windows-1252"), detect(body, "text/html"));
+        assertEquals(CharsetDetector.DEFAULT_CHARSET,
+                detect(body, "application/json"));
+    }
+
+    /**
+     * Test which charsets can be tokenized as bytes.
+     */
+    public void testAsciiCompatible() throws Exception {
+        System.out.println("AsciiCompatible");
+
+        assertTrue(CharsetDetector.isAsciiCompatible(Charset.forName("UTF-8")));
+        assertTrue(CharsetDetector.isAsciiCompatible(Charset.forName("ISO-8859-1")));
+        assertFalse("UTF-16 is not ASCII compatible",
+                CharsetDetector.isAsciiCompatible(Charset.forName("UTF-16LE")));
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package stringreplacer.rewriting;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import junit.framework.TestCase;
+import org.apache.commons.io.IOUtils;
+import stringreplacer.rewriting.ContextScopedRewriteStream.Syntax;
+
+/**
+ *
+ * @author elijah
+ */
+public class ContextScopedRewriteStreamTest extends TestCase {
+    private static final String MATCH = "http://seattletimes.nwsource.com";
+    private static final String REPLACE = "http://d1.seattletimes.nwsource.com";
+
+    private ReplacementRules replacements;
+
+    public ContextScopedRewriteStreamTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        Map<String, String> pairs = new HashMap<String, String>();
+        pairs.put(MATCH, REPLACE);
+        replacements = new ReplacementRules(pairs);
+    }
+
+    private String rewrite(String source, Syntax syntax) throws Exception {
+        InputStream in = IOUtils.toInputStream(source, "UTF-8");
+        InputStream instance = new ContextScopedRewriteStream(in, syntax,
+                replacements, CharsetDetector.DEFAULT_CHARSET);
+
+        String rewritten = IOUtils.toString(instance, "UTF-8");
+
+        IOUtils.closeQuietly(in);
+        IOUtils.closeQuietly(instance);
+
+        return rewritten;
+    }
+
+    /**
+     * Test that quoted and unquoted attribute values are rewritten while
+     * text nodes are left alone.
+     */
+    public void testMarkupAttributes() throws Exception {
+        System.out.println("MarkupAttributes");
+
+        String start = "<a href=\"" + MATCH + "/a\">" + MATCH + "</a>" +
+                "<img src='" + MATCH + "/b.png'><link href=" + MATCH + "/c>";
+        String expectation = "<a href=\"" + REPLACE + "/a\">" + MATCH + "</a>" +
+                "<img src='" + REPLACE + "/b.png'><link href=" + REPLACE + "/c>";
+
+        assertEquals("Fails to rewrite only attribute values", expectation,
+                rewrite(start, Syntax.MARKUP));
+    }
+
+    /**
+     * Test that a '<' in text that doesn't start a tag doesn't throw the
+     * tokenizer off, so that quotes in the text aren't taken as attribute
+     * values.
+     */
+    public void testMarkupLessThanInText() throws Exception {
+        System.out.println("MarkupLessThanInText");
+
+        String start = "<p>if a < b, don't</p><a href='" + MATCH + "/x'>y</a>" +
+                "<img src='" + MATCH + "/i'>";
+        String expectation = "<p>if a < b, don't</p><a href='" + REPLACE + "/x'>y</a>" +
+                "<img src='" + REPLACE + "/i'>";
+
+        assertEquals("Fails to rewrite after a '<' in text", expectation,
+                rewrite(start, Syntax.MARKUP));
+    }
+
+    /**
+     * Test that comments and data URIs are copied without rewriting.
+     */
+    public void testMarkupSkipsCommentsAndDataUris() throws Exception {
+        System.out.println("MarkupSkipsCommentsAndDataUris");
+
+        String expectation = "<!-- don't <a href=\"" + MATCH + "\"> -->" +
+                "<img src=\"data:text/plain," + MATCH + "\">";
+
+        assertEquals("Fails to skip opaque content", expectation,
+                rewrite(expectation, Syntax.MARKUP));
+    }
+
+    /**
+     * Test that style bodies are tokenized as CSS and script bodies are
+     * scanned in full, while text after them is left alone again.
+     */
+    public void testMarkupStyleAndScript() throws Exception {
+        System.out.println("MarkupStyleAndScript");
+
+        String start = "<style>body { background: url(" + MATCH + "/x.png) }" +
+                "</STYLE><script>var u = '" + MATCH + "';</script>" +
+                "<script src=\"" + MATCH + "/a.js\"/>" + MATCH;
+        String expectation = "<style>body { background: url(" + REPLACE + "/x.png) }" +
+                "</STYLE><script>var u = '" + REPLACE + "';</script>" +
+                "<script src=\"" + REPLACE + "/a.js\"/>" + MATCH;
+
+        assertEquals("Fails to rewrite style and script bodies", expectation,
+                rewrite(start, Syntax.MARKUP));
+    }
+
+    /**
+     * Test that reading in blocks of any size gives the same output as
+     * reading one byte at a time, including across opaque regions longer
+     * than a block.
+     */
+    public void testBlockReads() throws Exception {
+        System.out.println("BlockReads");
+
+        StringBuilder blob = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            blob.append("abcdefghij");
+        }
+
+        String markup = "<p>" + blob + "</p><!-- - " + blob + " --><img " +
+                "src=\"data:" + blob + "\" alt='" + MATCH + "'>" +
+                "<style>/* * " + blob + " */ a { b: url(" + MATCH + ") }</style>";
+        String json = "{\"" + blob + "\\\"\": \"" + MATCH + "\"}";
+
+        assertBlockReads(markup, Syntax.MARKUP);
+        assertBlockReads(json, Syntax.JSON);
+    }
+
+    private void assertBlockReads(String source, Syntax syntax)
+            throws Exception {
+        byte[] bytes = source.getBytes("UTF-8");
+        InputStream single = new ContextScopedRewriteStream(
+                new ByteArrayInputStream(bytes), syntax, replacements,
+                CharsetDetector.DEFAULT_CHARSET);
+        ByteArrayOutputStream expectation = new ByteArrayOutputStream();
+
+        for (int b = single.read(); b != -1; b = single.read()) {
+            expectation.write(b);
+        }
+
+        assertTrue("Fails to rewrite", expectation.toString("UTF-8")
+                .contains(REPLACE));
+
+        for (int size : new int[] { 1, 7, 4096, 10000 }) {
+            InputStream instance = new ContextScopedRewriteStream(
+                    new ByteArrayInputStream(bytes), syntax, replacements,
+                    CharsetDetector.DEFAULT_CHARSET);
+            ByteArrayOutputStream rewritten = new ByteArrayOutputStream();
+            byte[] buffer = new byte[size];
+
+            for (int n = instance.read(buffer); n != -1; n = instance.read(buffer)) {
+                rewritten.write(buffer, 0, n);
+            }
+
+            assertEquals("Fails to read in blocks of " + size,
+                    expectation.toString("UTF-8"), rewritten.toString("UTF-8"));
+        }
+    }
+
+    /**
+     * Test that url() values and strings in CSS are rewritten.
+     */
+    public void testCss() throws Exception {
+        System.out.println("Css");
+
+        String start = "/* " + MATCH + " */ @import \"" + MATCH + "/a.css\";" +
+                "body { background: url( " + MATCH + "/b.png); }" +
+                "p { background: URL('data:" + MATCH + "'); }";
+        String expectation = "/* " + MATCH + " */ @import \"" + REPLACE + "/a.css\";" +
+                "body { background: url( " + REPLACE + "/b.png); }" +
+                "p { background: URL('data:" + MATCH + "'); }";
+
+        assertEquals("Fails to rewrite CSS urls", expectation,
+                rewrite(start, Syntax.CSS));
+    }
+
+    /**
+     * Test that JSON string values are rewritten but keys are not.
+     */
+    public void testJson() throws Exception {
+        System.out.println("Json");
+
+        String start = "{\"" + MATCH + "\": [\"" + MATCH + "\", 1]," +
+                " \"b\": \"\\\"" + MATCH + "\"}";
+        String expectation = "{\"" + MATCH + "\": [\"" + REPLACE + "\", 1]," +
+                " \"b\": \"\\\"" + REPLACE + "\"}";
+
+        assertEquals("Fails to rewrite JSON string values", expectation,
+                rewrite(start, Syntax.JSON));
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package stringreplacer.rewriting;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Requests and origin connections shared by the HTTP tests.
+ *
+ * @author elijah
+ */
+final class HttpFixtures {
+    /** Origin and path of the document that requests are made for. */
+    static final String ORIGIN = "seattletimes.nwsource.com";
+    static final String PATH = "/index.html";
+
+    private HttpFixtures() {
+    }
+
+    /**
+     * Creates a request for PATH on ORIGIN that only has the given headers.
+     */
+    static HttpServletRequest request(final String... headers) {
+        return (HttpServletRequest)Proxy.newProxyInstance(
+                HttpFixtures.class.getClassLoader(),
+                new Class<?>[] { HttpServletRequest.class },
+                new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("getPathInfo")) {
+                    return "/" + ORIGIN + PATH;
+                }
+                else if (method.getName().equals("getRequestURI")) {
+                    return "/rewriter/" + ORIGIN + PATH;
+                }
+                else if (method.getName().equals("getHeader")) {
+                    for (int i = 0; i < headers.length; i += 2) {
+                        if (headers[i].equalsIgnoreCase((String)args[0])) {
+                            return headers[i + 1];
+                        }
+                    }
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Connection that only has the given response headers and, unless told
+     * otherwise, an empty 200 response.
+     */
+    static class FakeConnection extends HttpURLConnection {
+        private final Map<String, List<String>> headers =
+                new LinkedHashMap<String, List<String>>();
+        private int status = HTTP_OK;
+        private byte[] body = new byte[0];
+
+        FakeConnection(String... headers) throws IOException {
+            super(new URL("http://seattletimes.nwsource.com/"));
+
+            for (int i = 0; i < headers.length; i += 2) {
+                List<String> values = new ArrayList<String>();
+                values.add(headers[i + 1]);
+                this.headers.put(headers[i], values);
+            }
+        }
+
+        /**
+         * Sets the status and the body the origin answers with.
+         */
+        FakeConnection respond(int status, String body) throws IOException {
+            this.status = status;
+            this.body = body.getBytes("UTF-8");
+            return this;
+        }
+
+        @Override
+        public int getResponseCode() {
+            return status;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            if (status >= HTTP_BAD_REQUEST) {
+                throw new IOException("Server returned HTTP response code: " +
+                        status);
+            }
+            return new ByteArrayInputStream(body);
+        }
+
+        @Override
+        public InputStream getErrorStream() {
+            return status >= HTTP_BAD_REQUEST ?
+                    new ByteArrayInputStream(body) : null;
+        }
+
+        @Override
+        public String getHeaderField(String name) {
+            for (String key : headers.keySet()) {
+                if (key.equalsIgnoreCase(name)) {
+                    return headers.get(key).get(0);
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public Map<String, List<String>> getHeaderFields() {
+            return headers;
+        }
+
+        @Override
+        public void connect() {
+        }
+
+        @Override
+        public void disconnect() {
+        }
+
+        @Override
+        public boolean usingProxy() {
+            return false;
+        }
+    }
+}
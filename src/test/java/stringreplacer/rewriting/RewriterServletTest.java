@@ -0,0 +1,249 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package stringreplacer.rewriting;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import junit.framework.TestCase;
+import stringreplacer.rewriting.HttpFixtures.FakeConnection;
+import stringreplacer.rewriting.RewrittenBodyCache.StoredBody;
+
+/**
+ *
+ * @author elijah
+ */
+public class RewriterServletTest extends TestCase {
+    private static final String MATCH = "http://seattletimes.nwsource.com";
+    private static final String REPLACE = "http://d1.seattletimes.nwsource.com";
+
+    private final StoredBody stored = new StoredBody(
+            "0123456789".getBytes(), "text/html", "\"abc\"", null);
+    private final FakeConnection notModified;
+
+    private int status;
+    private final Map<String, String> headers = new HashMap<String, String>();
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+    /* Connections the origin answers with, in order, and whether the
+     * client's range was forwarded when each of them was opened. */
+    private final List<FakeConnection> originResponses =
+            new ArrayList<FakeConnection>();
+    private final List<Boolean> forwardedRanges = new ArrayList<Boolean>();
+
+    public RewriterServletTest(String testName) throws Exception {
+        super(testName);
+
+        notModified = new FakeConnection("ETag", "\"abc\"",
+                "Cache-Control", "max-age=60", "Content-Length", "0");
+    }
+
+    private HttpServletResponse response() {
+        return (HttpServletResponse)Proxy.newProxyInstance(
+                getClass().getClassLoader(),
+                new Class<?>[] { HttpServletResponse.class },
+                new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+
+                if (name.equals("setStatus")) {
+                    status = (Integer)args[0];
+                }
+                else if (name.equals("setHeader")) {
+                    headers.put((String)args[0], (String)args[1]);
+                }
+                else if (name.equals("setContentLength")) {
+                    headers.put("Content-Length", String.valueOf(args[0]));
+                }
+                else if (name.equals("getOutputStream")) {
+                    return new ServletOutputStream() {
+                        @Override
+                        public void write(int b) {
+                            body.write(b);
+                        }
+                    };
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Creates a servlet with the default init parameters and a single
+     * replacement that gets its origin responses from originResponses.
+     */
+    private RewriterServlet servlet() throws Exception {
+        final ServletContext context = (ServletContext)Proxy.newProxyInstance(
+                getClass().getClassLoader(),
+                new Class<?>[] { ServletContext.class },
+                new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args)
+                    throws Exception {
+                if (method.getName().equals("getResourceAsStream")) {
+                    return new ByteArrayInputStream(
+                            (MATCH + "," + REPLACE + "\n").getBytes("UTF-8"));
+                }
+                return null;
+            }
+        });
+        ServletConfig config = (ServletConfig)Proxy.newProxyInstance(
+                getClass().getClassLoader(),
+                new Class<?>[] { ServletConfig.class },
+                new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("getServletContext")) {
+                    return context;
+                }
+                else if (method.getName().equals("getServletName")) {
+                    return "rewriter";
+                }
+                return null;
+            }
+        });
+
+        RewriterServlet servlet = new RewriterServlet() {
+            @Override
+            protected HttpURLConnection openUrlConnection(String origin,
+                    String path, HttpServletRequest request,
+                    boolean forwardRange, StoredBody revalidate) {
+                forwardedRanges.add(forwardRange);
+                return originResponses.remove(0);
+            }
+        };
+        servlet.init(config);
+
+        return servlet;
+    }
+
+    private void serve(HttpServletRequest request) throws Exception {
+        new RewriterServlet().copyRangeFromStored(stored, notModified,
+                request, response());
+    }
+
+    /**
+     * Test that a range is served from the stored copy along with the
+     * caching headers of the origin's 304.
+     */
+    public void testRangeFromStored() throws Exception {
+        System.out.println("RangeFromStored");
+
+        serve(HttpFixtures.request("Range", "bytes=2-4"));
+
+        assertEquals(HttpServletResponse.SC_PARTIAL_CONTENT, status);
+        assertEquals("234", body.toString());
+        assertEquals("bytes 2-4/10", headers.get("Content-Range"));
+        assertEquals("3", headers.get("Content-Length"));
+        assertEquals("max-age=60", headers.get("Cache-Control"));
+    }
+
+    /**
+     * Test that a stale If-Range gets the whole stored copy.
+     */
+    public void testStaleIfRange() throws Exception {
+        System.out.println("StaleIfRange");
+
+        serve(HttpFixtures.request("Range", "bytes=2-4",
+                "If-Range", "\"old\""));
+
+        assertEquals(HttpServletResponse.SC_OK, status);
+        assertEquals("0123456789", body.toString());
+    }
+
+    /**
+     * Test that the client's own validators are checked against the copy.
+     */
+    public void testNotModified() throws Exception {
+        System.out.println("NotModified");
+
+        serve(HttpFixtures.request("Range", "bytes=2-4",
+                "If-None-Match", "\"x\", W/\"abc\""));
+
+        assertEquals(HttpServletResponse.SC_NOT_MODIFIED, status);
+        assertEquals(0, body.size());
+    }
+
+    /**
+     * Test that a range of a rewritten document that the origin honored is
+     * fetched again without the range and sent whole.
+     */
+    public void testRefetchPartialContent() throws Exception {
+        System.out.println("RefetchPartialContent");
+
+        String document = "<a href=\"" + MATCH + "/a\">";
+        originResponses.add(new FakeConnection("Content-Type", "text/html",
+                "Content-Range", "bytes 0-3/" + document.length(),
+                "Content-Length", "4").respond(
+                HttpServletResponse.SC_PARTIAL_CONTENT, document.substring(0, 4)));
+        originResponses.add(new FakeConnection("Content-Type", "text/html",
+                "Content-Length", String.valueOf(document.length())).respond(
+                HttpServletResponse.SC_OK, document));
+
+        servlet().doRequest(HttpFixtures.request("Range", "bytes=0-3"),
+                response());
+
+        assertEquals(Arrays.asList(true, false), forwardedRanges);
+        assertEquals(HttpServletResponse.SC_OK, status);
+        assertEquals("<a href=\"" + REPLACE + "/a\">", body.toString("UTF-8"));
+        assertNull(headers.get("Content-Range"));
+        assertNull("Sent the origin length", headers.get("Content-Length"));
+    }
+
+    /**
+     * Test that a range of a rewritten document that the origin rejected is
+     * fetched again without the range, since the origin's offsets don't
+     * apply to the rewritten document.
+     */
+    public void testRefetchUnsatisfiableRange() throws Exception {
+        System.out.println("RefetchUnsatisfiableRange");
+
+        String document = "<a href=\"" + MATCH + "/a\">";
+        originResponses.add(new FakeConnection("Content-Type", "text/html",
+                "Content-Range", "bytes */" + document.length()).respond(
+                HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE, ""));
+        originResponses.add(new FakeConnection("Content-Type", "text/html")
+                .respond(HttpServletResponse.SC_OK, document));
+
+        servlet().doRequest(HttpFixtures.request("Range", "bytes=40-"),
+                response());
+
+        assertEquals(Arrays.asList(true, false), forwardedRanges);
+        assertEquals(HttpServletResponse.SC_OK, status);
+        assertEquals("<a href=\"" + REPLACE + "/a\">", body.toString("UTF-8"));
+        assertNull(headers.get("Content-Range"));
+    }
+
+    /**
+     * Test that ranges of documents that aren't rewritten are passed on.
+     */
+    public void testRangeNotRewritten() throws Exception {
+        System.out.println("RangeNotRewritten");
+
+        originResponses.add(new FakeConnection("Content-Type", "image/png",
+                "Content-Range", "bytes 0-3/10", "Content-Length", "4").respond(
+                HttpServletResponse.SC_PARTIAL_CONTENT, "0123"));
+
+        servlet().doRequest(HttpFixtures.request("Range", "bytes=0-3"),
+                response());
+
+        assertEquals(Arrays.asList(true), forwardedRanges);
+        assertEquals(HttpServletResponse.SC_PARTIAL_CONTENT, status);
+        assertEquals("0123", body.toString("UTF-8"));
+        assertEquals("bytes 0-3/10", headers.get("Content-Range"));
+    }
+}
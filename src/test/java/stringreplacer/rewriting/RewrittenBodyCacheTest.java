@@ -0,0 +1,142 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package stringreplacer.rewriting;
+
+import junit.framework.TestCase;
+import stringreplacer.rewriting.HttpFixtures.FakeConnection;
+import stringreplacer.rewriting.RewrittenBodyCache.StoredBody;
+
+/**
+ *
+ * @author elijah
+ */
+public class RewrittenBodyCacheTest extends TestCase {
+    private static final String LAST_MODIFIED = "Tue, 15 Nov 1994 08:12:31 GMT";
+
+    public RewrittenBodyCacheTest(String testName) {
+        super(testName);
+    }
+
+    private StoredBody stored(String etag) {
+        return new StoredBody("body".getBytes(), "text/html", etag,
+                LAST_MODIFIED);
+    }
+
+    /**
+     * Test of matchesIfRange, which only accepts strong ETags or the exact
+     * Last-Modified date.
+     */
+    public void testMatchesIfRange() throws Exception {
+        System.out.println("MatchesIfRange");
+
+        StoredBody body = stored("\"abc\"");
+
+        assertTrue(body.matchesIfRange(null));
+        assertTrue(body.matchesIfRange("\"abc\""));
+        assertTrue(body.matchesIfRange(LAST_MODIFIED));
+        assertFalse("Weak ETag validated a range", body.matchesIfRange("W/\"abc\""));
+        assertFalse(body.matchesIfRange("\"other\""));
+    }
+
+    /**
+     * Test of isNotModified with If-None-Match lists, weak tags and "*".
+     */
+    public void testIfNoneMatch() throws Exception {
+        System.out.println("IfNoneMatch");
+
+        StoredBody body = stored("W/\"abc\"");
+
+        assertTrue(body.isNotModified("\"abc\"", null));
+        assertTrue(body.isNotModified("\"x\", W/\"abc\"", null));
+        assertTrue(body.isNotModified("*", null));
+        assertFalse(body.isNotModified("\"x\", \"y\"", null));
+        assertFalse("If-Modified-Since used with If-None-Match",
+                body.isNotModified("\"x\"", LAST_MODIFIED));
+    }
+
+    /**
+     * Test of isNotModified with If-Modified-Since dates.
+     */
+    public void testIfModifiedSince() throws Exception {
+        System.out.println("IfModifiedSince");
+
+        StoredBody body = stored(null);
+
+        assertTrue(body.isNotModified(null, LAST_MODIFIED));
+        assertTrue(body.isNotModified(null, "Wed, 16 Nov 1994 00:00:00 GMT"));
+        assertFalse(body.isNotModified(null, "Mon, 14 Nov 1994 00:00:00 GMT"));
+        assertFalse(body.isNotModified(null, "not a date"));
+        assertFalse(body.isNotModified(null, null));
+    }
+
+    /**
+     * Test of isCacheable with responses that must not be shared.
+     */
+    public void testIsCacheable() throws Exception {
+        System.out.println("IsCacheable");
+
+        RewrittenBodyCache cache = new RewrittenBodyCache(10, 100);
+
+        assertTrue(cache.isCacheable(new FakeConnection("ETag", "\"a\"")));
+        assertTrue(cache.isCacheable(new FakeConnection(
+                "Last-Modified", LAST_MODIFIED, "Vary", "Accept-Encoding")));
+        assertFalse("No validator", cache.isCacheable(new FakeConnection()));
+        assertFalse("no-store", cache.isCacheable(new FakeConnection(
+                "ETag", "\"a\"", "Cache-Control", "no-store")));
+        assertFalse("private", cache.isCacheable(new FakeConnection(
+                "ETag", "\"a\"", "Cache-Control", "max-age=60, private")));
+        assertFalse("Set-Cookie", cache.isCacheable(new FakeConnection(
+                "ETag", "\"a\"", "Set-Cookie", "id=1")));
+        assertFalse("Vary", cache.isCacheable(new FakeConnection(
+                "ETag", "\"a\"", "Vary", "Accept-Encoding, Cookie")));
+    }
+
+    /**
+     * Test of isCandidate, which needs a range request without cookies and
+     * a cache that is turned on.
+     */
+    public void testIsCandidate() throws Exception {
+        System.out.println("IsCandidate");
+
+        RewrittenBodyCache cache = new RewrittenBodyCache(10, 100);
+
+        assertTrue(cache.isCandidate(
+                HttpFixtures.request("Range", "bytes=0-1")));
+        assertFalse(cache.isCandidate(HttpFixtures.request()));
+        assertFalse(cache.isCandidate(HttpFixtures.request("Range", "bytes=0-1",
+                "Cookie", "id=1")));
+        assertFalse("Disabled cache", new RewrittenBodyCache(0, 100)
+                .isCandidate(HttpFixtures.request("Range", "bytes=0-1")));
+    }
+
+    /**
+     * Test that bodies over the length limit are neither captured nor kept
+     * and that the least recently used body is dropped.
+     */
+    public void testLimits() throws Exception {
+        System.out.println("Limits");
+
+        RewrittenBodyCache cache = new RewrittenBodyCache(2, 5);
+
+        RewrittenBodyCache.Capture capture = cache.newCapture();
+        capture.write("12345".getBytes(), 0, 5);
+        assertEquals(5, capture.toByteArray().length);
+        capture.write('6');
+        assertNull("Kept a body over the limit", capture.toByteArray());
+
+        cache.put("a", stored("\"a\""));
+        cache.put("b", stored("\"b\""));
+        cache.get("a");
+        cache.put("c", stored("\"c\""));
+        cache.put("d", new StoredBody("123456".getBytes(), "text/html",
+                "\"d\"", null));
+
+        assertNotNull("Dropped recently used body", cache.get("a"));
+        assertNull("Kept least recently used body", cache.get("b"));
+        assertNotNull(cache.get("c"));
+        assertNull("Stored a body over the limit", cache.get("d"));
+    }
+}
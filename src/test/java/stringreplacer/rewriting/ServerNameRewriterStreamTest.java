@@ -6,7 +6,11 @@
 package stringreplacer.rewriting;
 
 import stringreplacer.rewriting.MatchAndReplaceStream;
+import java.io.ByteArrayInputStream;
 import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
 import junit.framework.TestCase;
 import org.apache.commons.io.IOUtils;
 
@@ -96,5 +100,76 @@ public class ServerNameRewriterStreamTest extends TestCase {
         
         assertEquals("Fails to output the non-matching data", expectation, rewritten);
     }
-    
+
+    /**
+     * Test of read method with rules encoded for a charset that isn't
+     * ASCII compatible.
+     */
+    public void testUtf16Match() throws Exception {
+        System.out.println("Utf16Match");
+        String matchText = "seattletimes.nwsource.com";
+        String replaceText = "d1.seattletimes.nwsource.com";
+        Charset charset = Charset.forName("UTF-16LE");
+
+        String start = "Test String Foo Bar " + matchText + " Some more text";
+        String expectation = "Test String Foo Bar " + replaceText + " Some more text";
+
+        ReplacementRules rules = new ReplacementRules(
+                Collections.singletonMap(matchText, replaceText));
+        InputStream source = IOUtils.toInputStream(start, charset.name());
+        InputStream instance = rules.nest(source, charset);
+
+        String transformed = IOUtils.toString(instance, charset.name());
+
+        IOUtils.closeQuietly(source);
+        IOUtils.closeQuietly(instance);
+
+        assertEquals("Fails to output the matching data", expectation, transformed);
+    }
+
+    /**
+     * Test of read method with match text outside of ASCII, which is
+     * encoded as UTF-8 regardless of the platform default charset.
+     */
+    public void testNonAsciiMatch() throws Exception {
+        System.out.println("NonAsciiMatch");
+        String matchText = "caf\u00e9.nwsource.com";
+        String replaceText = "d1.caf\u00e9.nwsource.com";
+
+        String start = "Test String " + matchText + " Some more text";
+        String expectation = "Test String " + replaceText + " Some more text";
+
+        InputStream source = IOUtils.toInputStream(start, "UTF-8");
+
+        MatchAndReplaceStream instance = new MatchAndReplaceStream(source,
+                matchText, replaceText);
+
+        String transformed = IOUtils.toString(instance, "UTF-8");
+
+        IOUtils.closeQuietly(source);
+        IOUtils.closeQuietly(instance);
+
+        assertEquals("Fails to output the matching data", expectation, transformed);
+    }
+
+    /**
+     * Test of read method with bytes that are negative when signed, which
+     * must not be mistaken for the end of the stream.
+     */
+    public void testHighBytes() throws Exception {
+        System.out.println("HighBytes");
+
+        byte[] expectation = new byte[] { (byte)0xFF, (byte)0xFE, 's', (byte)0xFF };
+        InputStream source = new ByteArrayInputStream(expectation);
+
+        MatchAndReplaceStream instance = new MatchAndReplaceStream(source,
+                "seattletimes.nwsource.com", "d1.seattletimes.nwsource.com");
+        byte[] rewritten = IOUtils.toByteArray(instance);
+
+        IOUtils.closeQuietly(source);
+        IOUtils.closeQuietly(instance);
+
+        assertTrue("Fails to output high bytes",
+                Arrays.equals(expectation, rewritten));
+    }
 }
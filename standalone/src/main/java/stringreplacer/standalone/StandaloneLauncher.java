@@ -0,0 +1,116 @@
+/* Copyright 2011 Elijah Zupancic
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package stringreplacer.standalone;
+
+import java.io.File;
+import java.util.concurrent.Executors;
+import org.eclipse.jetty.ee8.servlet.ServletContextHandler;
+import org.eclipse.jetty.ee8.servlet.ServletHolder;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import stringreplacer.rewriting.RewriterServlet;
+
+/**
+ * Runs the {@link RewriterServlet} in an embedded Jetty server without
+ * needing to deploy the WAR to a servlet container. Every request is
+ * dispatched on its own virtual thread, so slow origin servers block cheap
+ * virtual threads rather than exhausting a fixed pool of platform threads.
+ *
+ * The servlet reads its configuration from WEB-INF/replacements.csv under
+ * the webapp directory, exactly as it does when deployed as a WAR. No
+ * annotation or descriptor scanning is done so that startup stays fast.
+ * The servlet init-params from web.xml can be set as system properties of
+ * the same name (e.g. -DcontextScopedRewriting=true).
+ *
+ * Usage: StandaloneLauncher [port] [webapp directory]
+ *
+ * @author Elijah Zupancic
+ */
+public class StandaloneLauncher {
+    private static final int DEFAULT_PORT = 8080;
+    // relative to the standalone/ directory that the launcher is built in
+    private static final String DEFAULT_WEBAPP_DIR = "../src/main/webapp";
+    private static final String CONTEXT_PATH = "/rewriter";
+
+    /** The servlet init-params that are configured in web.xml. */
+    private static final String[] INIT_PARAMETERS = new String[] {
+        "contextScopedRewriting", "rewrittenBodyCacheSize",
+        "rewrittenBodyMaxLength"
+    };
+
+    public static void main(String[] args) throws Exception {
+        final int port = args.length > 0 ?
+                Integer.parseInt(args[0]) : DEFAULT_PORT;
+        final File webappDir = new File(args.length > 1 ?
+                args[1] : DEFAULT_WEBAPP_DIR);
+
+        if (!new File(webappDir, "WEB-INF/replacements.csv").isFile()) {
+            throw new IllegalArgumentException("No WEB-INF/replacements.csv " +
+                    "found in webapp directory: " + webappDir.getAbsolutePath());
+        }
+
+        Server server = createServer(port, webappDir);
+        server.start();
+        server.join();
+    }
+
+    /**
+     * Creates an embedded server that hosts the rewriter servlet on virtual
+     * threads.
+     * @param port port to listen on
+     * @param webappDir directory containing WEB-INF/replacements.csv
+     * @return server ready to be started
+     */
+    public static Server createServer(int port, File webappDir) {
+        /* Jetty keeps a few platform threads for its selectors and hands
+         * every request off to a new virtual thread, so there is no pool
+         * size that needs to be tuned for slow origins. */
+        QueuedThreadPool threadPool = new QueuedThreadPool();
+        threadPool.setName("rewriter");
+        threadPool.setVirtualThreadsExecutor(
+                Executors.newVirtualThreadPerTaskExecutor());
+
+        Server server = new Server(threadPool);
+
+        ServerConnector connector = new ServerConnector(server);
+        connector.setPort(port);
+        server.addConnector(connector);
+
+        ServletContextHandler context =
+                new ServletContextHandler(ServletContextHandler.NO_SESSIONS);
+        context.setContextPath(CONTEXT_PATH);
+        context.setBaseResourceAsString(webappDir.getAbsolutePath());
+
+        ServletHolder holder = context.addServlet(RewriterServlet.class, "/*");
+
+        // unset parameters fall back to the servlet's own defaults
+        for (String name : INIT_PARAMETERS) {
+            String value = System.getProperty(name);
+
+            if (value != null) {
+                holder.setInitParameter(name, value);
+            }
+        }
+
+        // load on startup so that a bad replacements.csv fails immediately
+        holder.setInitOrder(0);
+
+        server.setHandler(context);
+
+        return server;
+    }
+}